@@ -0,0 +1,125 @@
+package divisio.dl4jwine;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.converters.FileConverter;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.stream.Stream;
+
+/**
+ * Compares the training throughput of the {@link SparkTrainer} with the single process {@link MultilayerTrainer} on the
+ * same preprocessed data and reports the scaling efficiency of the spark trainer. All native ops run single threaded,
+ * so the baseline really is one worker and the local spark tasks do not compete for cores. Optionally also compares throughput
+ * and validation results of the {@link MultilayerTrainer} with gradient accumulation. All trainers are validated after
+ * the same epochs, i.e. after the same number of seen examples.
+ */
+public class BenchmarkApp {
+
+    private static final Logger log = LoggerFactory.getLogger(BenchmarkApp.class);
+
+    @Parameter(names = {"-h", "--help"}, description = "Show usage info.", help = true)
+    private boolean help;
+    @Parameter(names = { "-pf", "--preprocessedFolder" }, description = "Folder with the preprocessed CSVs.", converter = FileConverter.class)
+    private File preprocessingFolder = TrainingApp.buildPreprocessedFolder(new File("data/preprocessed"),
+            StandardizingPreprocessor.buildTag(StandardizingPreprocessor.DEFAULT_STRATIFICATION_COLUMNS));
+    @Parameter(names = {"-e", "--epochs"}, description = "Number of epochs to measure per trainer")
+    private int epochs = 50;
+    @Parameter(names = {"-vi", "--validationInterval"}, description = "Validate every this many epochs.")
+    private int validationInterval = 10;
+    @Parameter(names = {"-sm", "--sparkMaster"}, description = "Spark master url for the spark trainer, e.g. local[4].")
+    private String sparkMaster = "local[*]";
+    @Parameter(names = {"-ab", "--accumulationBatches"}, description = "Also benchmark gradient accumulation over this many batches, if > 1.")
+    private int accumulationBatches = 1;
+    // lower than for the training app, so the warmup ends early in the measured epochs
+    @Parameter(names = {"-wu", "--warmupUpdates"}, description = "Number of updates to warm up the learning rate when accumulating gradients.")
+    private int warmupUpdates = 20;
+
+    /**
+     * trains for the given number of epochs after one warmup epoch, validating every validationInterval epochs and
+     * after the last one
+     * @return training throughput in examples / second, without validation
+     */
+    private static double measure(final Trainer trainer, final long numExamples, final int epochs,
+                                  final int validationInterval) throws Exception {
+        // warmup, so data loading & JIT do not count
+        trainer.train();
+        long duration = 0;
+        for (int epoch = 1; epoch <= epochs; ++epoch) {
+            final long start = System.currentTimeMillis();
+            trainer.train();
+            duration += System.currentTimeMillis() - start;
+            if (epoch % validationInterval == 0 || epoch == epochs) {
+                // the warmup epoch counts as well
+                log.info(trainer.getTag() + ": validation after " + (epoch + 1) * numExamples + " examples");
+                trainer.validate();
+            }
+        }
+        final double examplesPerSecond = numExamples * epochs * 1000.0 / Math.max(duration, 1);
+        log.info(trainer.getTag() + ": " + epochs + " epochs took " + duration + "ms, "
+                + String.format("%.1f", examplesPerSecond) + " examples/s");
+        return examplesPerSecond;
+    }
+
+    public static void main(final String[] args ) throws Exception {
+        final BenchmarkApp app = new BenchmarkApp();
+
+        // parse command line params
+        final JCommander commander = JCommander.newBuilder().addObject(app).build();
+        commander.parse(args);
+        if (app.help) {
+            commander.usage();
+            System.exit(0);
+            return;
+        }
+        if (app.epochs < 1) {
+            throw new ParameterException("--epochs must be at least 1, was " + app.epochs);
+        }
+        if (app.validationInterval < 1) {
+            throw new ParameterException("--validationInterval must be at least 1, was " + app.validationInterval);
+        }
+
+        // otherwise the baseline uses all cores as well, and each local spark task starts one OpenMP thread per core
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(1);
+
+        final long numExamples;
+        try (final Stream<String> lines = Files.lines(new File(app.preprocessingFolder, "training.csv").toPath())) {
+            numExamples = lines.count();
+        }
+        log.info("Benchmarking on " + numExamples + " training examples");
+
+        // the spark trainer has no listeners, so the baseline must not have any either
+        final MultilayerTrainer baselineTrainer = new MultilayerTrainer(app.preprocessingFolder);
+        baselineTrainer.disableListeners();
+        final double baseline = measure(baselineTrainer, numExamples, app.epochs, app.validationInterval);
+
+        if (app.accumulationBatches > 1) {
+            final long batchesPerEpoch = (numExamples + MultilayerTrainer.batchSize - 1) / MultilayerTrainer.batchSize;
+            final long updatesPerEpoch = (batchesPerEpoch + app.accumulationBatches - 1) / app.accumulationBatches;
+            final long updates = updatesPerEpoch * (app.epochs + 1);
+            if (app.warmupUpdates > updates / 2) {
+                log.warn("The learning rate warmup takes " + app.warmupUpdates + " of " + updates
+                        + " updates, so the comparison mostly measures the warmup - use more epochs or fewer warmup updates");
+            }
+            final MultilayerTrainer accumulatingTrainer =
+                    new MultilayerTrainer(app.preprocessingFolder, app.accumulationBatches, app.warmupUpdates);
+            accumulatingTrainer.disableListeners();
+            final double accumulating = measure(accumulatingTrainer, numExamples, app.epochs, app.validationInterval);
+            log.info(String.format("Gradient accumulation over %d batches: %.2fx the plain throughput",
+                    app.accumulationBatches, accumulating / baseline));
+        }
+
+        final SparkTrainer sparkTrainer = new SparkTrainer(app.preprocessingFolder, app.sparkMaster);
+        final double spark = measure(sparkTrainer, numExamples, app.epochs, app.validationInterval);
+
+        // efficiency: 1.0 means n workers are n times as fast as a single process
+        final int workers = sparkTrainer.getParallelism();
+        log.info(String.format("Speedup with %d workers: %.2f, scaling efficiency: %.1f%%",
+                workers, spark / baseline, 100.0 * spark / (baseline * workers)));
+    }
+}
@@ -0,0 +1,243 @@
+package divisio.dl4jwine;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.converters.FileConverter;
+import org.datavec.api.writable.Writable;
+import org.deeplearning4j.eval.RegressionEvaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.nativeblas.NativeOpsHolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Runs a k-fold cross-validation of the {@link MultilayerTrainer} network on the raw data. The data is parsed only once,
+ * the standardization parameters are determined per fold from that fold's training rows, and the folds are trained
+ * concurrently. The cores are divided between the folds: with t folds in parallel, each ND4J op only uses 1/t of the
+ * cores, which is faster for our small network than running fewer folds with more threads per op.
+ */
+public class CrossValidationApp {
+
+    private static final Logger log = LoggerFactory.getLogger(CrossValidationApp.class);
+
+    // column layout of the raw data with wine type
+    private static final int IDX_QUALITY = StandardizingPreprocessor.wineTypeSchema.getIndexOfColumn("quality");
+    private static final int IDX_WINE_TYPE = StandardizingPreprocessor.wineTypeSchema.getIndexOfColumn("wine type");
+    private static final int[] IDX_MEASUREMENTS = measurementColumns();
+
+    @Parameter(names = {"-h", "--help"}, description = "Show usage info.", help = true)
+    private boolean help;
+    @Parameter(names = { "-rf", "--rawDataFolder" }, description = "Folder with the raw data.", converter = FileConverter.class)
+    private File rawDataFolder = new File("data/raw");
+    @Parameter(names = {"-k", "--folds"}, description = "Number of folds")
+    private int folds = 10;
+    @Parameter(names = {"-e", "--epochs"}, description = "Number of epochs to train per fold")
+    private int epochs = 1000;
+    @Parameter(names = {"-th", "--threads"}, description = "Number of folds to train concurrently, the cores are divided between them")
+    private int threads = Runtime.getRuntime().availableProcessors();
+    @Parameter(names = {"-s", "--seed"}, description = "Seed for fold assignment & shuffling")
+    private long seed = 87654321;
+
+    // parsed data, shared read-only between all folds
+    // features: wine type followed by the raw (not yet standardized) measurements
+    private double[][] features;
+    private double[] labels;
+
+    /**
+     * @return indices of all columns that are neither quality nor wine type, in schema order
+     */
+    private static int[] measurementColumns() {
+        final int nColumns = StandardizingPreprocessor.wineTypeSchema.numColumns();
+        final int[] result = new int[nColumns - 2];
+        int next = 0;
+        for (int i = 0; i < nColumns; ++i) {
+            if (i != IDX_QUALITY && i != IDX_WINE_TYPE) {
+                result[next++] = i;
+            }
+        }
+        return result;
+    }
+
+    private void parse(final List<List<Writable>> records) {
+        features = new double[records.size()][];
+        labels = new double[records.size()];
+        for (int i = 0; i < records.size(); ++i) {
+            final List<Writable> record = records.get(i);
+            final double[] row = new double[IDX_MEASUREMENTS.length + 1];
+            // move wine type to front, just like the preprocessor
+            row[0] = record.get(IDX_WINE_TYPE).toDouble();
+            for (int j = 0; j < IDX_MEASUREMENTS.length; ++j) {
+                row[j + 1] = record.get(IDX_MEASUREMENTS[j]).toDouble();
+            }
+            features[i] = row;
+            labels[i] = record.get(IDX_QUALITY).toDouble();
+        }
+    }
+
+    /**
+     * builds a data set from the given rows, standardizing all measurements with the given mean & standard deviation
+     */
+    private DataSet buildDataSet(final List<Integer> rows, final double[] mean, final double[] stdev) {
+        final double[][] x = new double[rows.size()][];
+        final double[][] y = new double[rows.size()][];
+        for (int i = 0; i < rows.size(); ++i) {
+            final double[] raw = features[rows.get(i)];
+            final double[] row = raw.clone();
+            for (int j = 1; j < row.length; ++j) {
+                row[j] = (raw[j] - mean[j]) / stdev[j];
+            }
+            x[i] = row;
+            y[i] = new double[]{labels[rows.get(i)]};
+        }
+        return new DataSet(Nd4j.create(x), Nd4j.create(y));
+    }
+
+    private RegressionEvaluation runFold(final int fold, final int[] order) {
+        final List<Integer> training = new ArrayList<>();
+        final List<Integer> testing = new ArrayList<>();
+        for (int i = 0; i < order.length; ++i) {
+            if (i % folds == fold) {
+                testing.add(order[i]);
+            } else {
+                training.add(order[i]);
+            }
+        }
+
+        // standardization parameters from the training rows only (column 0 is the wine type, which stays as is)
+        final int nColumns = IDX_MEASUREMENTS.length + 1;
+        final double[] mean = new double[nColumns];
+        final double[] stdev = new double[nColumns];
+        for (final int row : training) {
+            for (int j = 1; j < nColumns; ++j) {
+                mean[j] += features[row][j];
+            }
+        }
+        for (int j = 1; j < nColumns; ++j) {
+            mean[j] /= training.size();
+        }
+        for (final int row : training) {
+            for (int j = 1; j < nColumns; ++j) {
+                final double d = features[row][j] - mean[j];
+                stdev[j] += d * d;
+            }
+        }
+        for (int j = 1; j < nColumns; ++j) {
+            stdev[j] = Math.sqrt(stdev[j] / Math.max(training.size() - 1, 1));
+            if (stdev[j] == 0) {
+                stdev[j] = 1;
+            }
+        }
+
+        final DataSet trainingData = buildDataSet(training, mean, stdev);
+        final DataSet testingData = buildDataSet(testing, mean, stdev);
+
+        final MultiLayerNetwork nn = new MultiLayerNetwork(MultilayerTrainer.buildConfiguration());
+        nn.init();
+        for (int epoch = 0; epoch < epochs; ++epoch) {
+            MultilayerTrainer.fitEpoch(nn, trainingData, seed, epoch);
+        }
+
+        final RegressionEvaluation evaluation = new RegressionEvaluation(1);
+        final INDArray predictions = nn.output(testingData.getFeatures(), false);
+        evaluation.eval(testingData.getLabels(), predictions);
+        log.info("Fold " + (fold + 1) + "/" + folds + " done, MSE: " + evaluation.meanSquaredError(0));
+        return evaluation;
+    }
+
+    private List<RegressionEvaluation> run() throws Exception {
+        final int[] order = MultilayerTrainer.buildPermutation(labels.length, seed, 0);
+        final int poolSize = Math.min(threads, folds);
+        // divide the cores between the folds instead of letting each op of each fold use all of them
+        final int threadsPerFold = Math.max(1, Runtime.getRuntime().availableProcessors() / poolSize);
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(threadsPerFold);
+        log.info("Training " + poolSize + " folds in parallel, " + threadsPerFold + " threads per ND4J op");
+        final ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        try {
+            final List<Future<RegressionEvaluation>> futures = new ArrayList<>();
+            for (int fold = 0; fold < folds; ++fold) {
+                final int currentFold = fold;
+                futures.add(executor.submit(() -> runFold(currentFold, order)));
+            }
+            final List<RegressionEvaluation> result = new ArrayList<>();
+            for (final Future<RegressionEvaluation> future : futures) {
+                result.add(future.get());
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void logSummary(final List<RegressionEvaluation> evaluations) {
+        final Map<String, ToDoubleFunction<RegressionEvaluation>> metrics = new LinkedHashMap<>();
+        metrics.put("MSE", e -> e.meanSquaredError(0));
+        metrics.put("MAE", e -> e.meanAbsoluteError(0));
+        metrics.put("RMSE", e -> e.rootMeanSquaredError(0));
+        metrics.put("RSE", e -> e.relativeSquaredError(0));
+        metrics.put("R^2", e -> e.correlationR2(0));
+
+        final StringBuilder summary = new StringBuilder("\nCross-validation over " + evaluations.size() + " folds:");
+        for (final Map.Entry<String, ToDoubleFunction<RegressionEvaluation>> metric : metrics.entrySet()) {
+            double sum = 0;
+            double sumSquares = 0;
+            for (final RegressionEvaluation evaluation : evaluations) {
+                final double value = metric.getValue().applyAsDouble(evaluation);
+                sum += value;
+                sumSquares += value * value;
+            }
+            final int n = evaluations.size();
+            final double mean = sum / n;
+            final double stdev = n > 1 ? Math.sqrt(Math.max(0, (sumSquares - n * mean * mean) / (n - 1))) : 0;
+            summary.append(String.format("%n%-5s mean: %.5f stdev: %.5f", metric.getKey(), mean, stdev));
+        }
+        log.info(summary.toString());
+    }
+
+    public static void main(final String[] args ) throws Exception {
+        final CrossValidationApp app = new CrossValidationApp();
+
+        // parse command line params
+        final JCommander commander = JCommander.newBuilder().addObject(app).build();
+        commander.parse(args);
+        if (app.help) {
+            commander.usage();
+            System.exit(0);
+            return;
+        }
+        if (app.folds < 2) {
+            throw new ParameterException("--folds must be at least 2, was " + app.folds);
+        }
+        if (app.threads < 1) {
+            throw new ParameterException("--threads must be at least 1, was " + app.threads);
+        }
+
+        // make sure our data is available
+        new DataFetcher(app.rawDataFolder).fetchData();
+
+        // parse once, all folds share the parsed data
+        app.parse(StandardizingPreprocessor.readRawData(app.rawDataFolder));
+        if (app.folds > app.labels.length) {
+            throw new ParameterException("--folds must not exceed the number of examples (" + app.labels.length + ")");
+        }
+        log.info("Running " + app.folds + "-fold cross-validation on " + app.labels.length + " examples");
+
+        final long start = System.currentTimeMillis();
+        final List<RegressionEvaluation> evaluations = app.run();
+        log.info("Cross-validation took " + (System.currentTimeMillis() - start) + "ms");
+        logSummary(evaluations);
+    }
+}
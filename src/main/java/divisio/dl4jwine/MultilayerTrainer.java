@@ -15,19 +15,42 @@ import org.deeplearning4j.nn.conf.layers.DenseLayer;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.api.IterationListener;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.ui.stats.StatsListener;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.IUpdater;
 import org.nd4j.linalg.learning.config.RmsProp;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
+import org.nd4j.linalg.schedule.MapSchedule;
+import org.nd4j.linalg.schedule.ScheduleType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class MultilayerTrainer implements Trainer {
 
@@ -35,28 +58,65 @@ public class MultilayerTrainer implements Trainer {
 
     private static final int PRINT_ITERATIONS = 500;
 
+    /**
+     * name of the additional entry in the checkpoint zip that holds the shuffling & update state
+     */
+    private static final String SHUFFLE_STATE_ENTRY = "shuffleState.properties";
+
     private final File preprocessingFolder;
 
-    //hyperparameters
-    private final int nInputFeatures = 12;
-    private final int outputFeatures = 1;
-    private final int idxOutputFeature = nInputFeatures;//output feature is last column
-    private final int[] layerWidths = new int[]{nInputFeatures, 128, 64, 32, 16, outputFeatures};
-    private final WeightInit init = WeightInit.XAVIER;
-    private final int batchSize = 256;
+    //hyperparameters, shared with the SparkTrainer so both train the same network
+    private static final int nInputFeatures = 12;
+    private static final int outputFeatures = 1;
+    static final int idxOutputFeature = nInputFeatures;//output feature is last column
+    private static final int[] layerWidths = new int[]{nInputFeatures, 128, 64, 32, 16, outputFeatures};
+    private static final WeightInit init = WeightInit.XAVIER;
+    static final int batchSize = 256;
+
+    //gradient accumulation: number of (micro) batches per update & number of updates to warm up the learning rate
+    private final int accumulationBatches;
+    private final int warmupUpdates;
 
+    //shuffling state, persisted with each checkpoint so resumed runs see the same batch order
+    private long shuffleSeed = 87654321;
+    private int epoch = 0;
+    //number of updates in accumulation mode, persisted so a resumed warmup continues where it stopped
+    private int updates = 0;
+
+    // network & UI router are created on first use, so test & resume runs do not pay for what they do not need
     private MultiLayerNetwork nn;
-    private final StatsStorageRouter remoteUIRouter = new RemoteUIStatsStorageRouter("http://localhost:9000");
+    private boolean listenersAttached;
+    private boolean listenersEnabled = true;
+    private StatsStorageRouter remoteUIRouter;
+    //parsed once, each epoch only permutes the row indices
+    private DataSet trainingData;
 
     public MultilayerTrainer(final File preprocessingFolder) throws Exception {
+        this(preprocessingFolder, 1, 0);
+    }
+
+    /**
+     * @param accumulationBatches number of batches whose gradients are summed up before each update, 1 to update after
+     *                            each batch. The learning rate is scaled by the square root of this number.
+     * @param warmupUpdates number of updates over which the learning rate is increased linearly to its scaled value
+     */
+    public MultilayerTrainer(final File preprocessingFolder, final int accumulationBatches, final int warmupUpdates)
+            throws Exception {
         this.preprocessingFolder = preprocessingFolder;
+        this.accumulationBatches = accumulationBatches;
+        this.warmupUpdates = warmupUpdates;
+    }
+
+    static MultiLayerConfiguration buildConfiguration() {
+        return buildConfiguration(new RmsProp());
+    }
 
-        //build configuration
-        final MultiLayerConfiguration nnConf = new NeuralNetConfiguration.Builder()
+    static MultiLayerConfiguration buildConfiguration(final IUpdater updater) {
+        return new NeuralNetConfiguration.Builder()
                 .seed(12345678)
                 .weightInit(init)
                 .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
-                .updater(new RmsProp())
+                .updater(updater)
                 .dropOut(0.3)
                 .l2(0.1)
                 // ... other hyperparameters
@@ -66,14 +126,9 @@ public class MultilayerTrainer implements Trainer {
                 .pretrain(false)
                 //.inputPreProcessor() // if necessary, add additional preprocessing here
                 .backprop(true).build();
-
-        //build network
-        nn = new MultiLayerNetwork(nnConf);
-
-        attachListeners();
     }
 
-    private Layer[] buildLayers(final int[] layerWidths, final Activation activation, final LossFunction loss) {
+    private static Layer[] buildLayers(final int[] layerWidths, final Activation activation, final LossFunction loss) {
         final Layer[] result = new Layer[layerWidths.length - 1];
         //hidden layers
         for (int i = 0; i < layerWidths.length - 2; ++i) {
@@ -89,14 +144,36 @@ public class MultilayerTrainer implements Trainer {
         return result;
     }
 
+    private MultiLayerNetwork getNetwork() {
+        if (nn == null) {
+            //build network
+            nn = new MultiLayerNetwork(buildConfiguration(buildUpdater()));
+            nn.init();
+            listenersAttached = false;
+        }
+        return nn;
+    }
+
+    /**
+     * disables the UI & score listeners, e.g. for benchmarks that must not measure the listener overhead
+     */
+    void disableListeners() {
+        listenersEnabled = false;
+    }
+
     private void attachListeners() {
+        if (remoteUIRouter == null) {
+            remoteUIRouter = new RemoteUIStatsStorageRouter("http://localhost:9000");
+        }
+        listenersAttached = true;
         nn.setListeners(new StatsListener(remoteUIRouter), //sends stats to the UI
                         new ScoreIterationListener(PRINT_ITERATIONS));//logs scores
     }
 
     @Override
     public String getTag() {
-        return "multilayer_less_overfit_large_batch_size";
+        final String tag = "multilayer_less_overfit_large_batch_size";
+        return accumulationBatches > 1 ? tag + "_accumulate_" + accumulationBatches : tag;
     }
 
     private DataSetIterator buildIterator(final File csvFile) throws IOException, InterruptedException {
@@ -108,16 +185,147 @@ public class MultilayerTrainer implements Trainer {
                 true);
     }
 
+    private DataSet loadTrainingData() throws IOException, InterruptedException {
+        if (trainingData == null) {
+            final File trainingFile = new File(preprocessingFolder, "training.csv");
+            final DataSetIterator iter = buildIterator(trainingFile);
+            final List<DataSet> batches = new ArrayList<>();
+            while (iter.hasNext()) {
+                batches.add(iter.next());
+            }
+            trainingData = DataSet.merge(batches);
+            log.info("Loaded " + trainingData.numExamples() + " training examples from " + trainingFile);
+        }
+        return trainingData;
+    }
+
+    /**
+     * @return a permutation of [0, size) that only depends on the given seed and epoch, so the batch order of any
+     * epoch can be reproduced without knowing the order of the previous epochs
+     */
+    static int[] buildPermutation(final int size, final long seed, final int epoch) {
+        final Random random = new Random(seed ^ (epoch * 0x9E3779B97F4A7C15L));
+        final int[] result = new int[size];
+        for (int i = 0; i < size; ++i) {
+            result[i] = i;
+        }
+        // Fisher-Yates
+        for (int i = size - 1; i > 0; --i) {
+            final int j = random.nextInt(i + 1);
+            final int tmp = result[i];
+            result[i] = result[j];
+            result[j] = tmp;
+        }
+        return result;
+    }
+
+    /**
+     * fits the given network for one epoch on the given data, in an order determined by seed & epoch
+     */
+    static void fitEpoch(final MultiLayerNetwork network, final DataSet data, final long seed, final int epoch) {
+        final int[] order = buildPermutation(data.numExamples(), seed, epoch);
+        for (int from = 0; from < order.length; from += batchSize) {
+            final int[] rows = Arrays.copyOfRange(order, from, Math.min(from + batchSize, order.length));
+            network.fit(new DataSet(data.getFeatures().getRows(rows), data.getLabels().getRows(rows)));
+        }
+    }
+
+    /**
+     * @return RmsProp, when accumulating gradients with a learning rate scaled with the effective batch size after a
+     * linear warmup over the update count
+     */
+    private IUpdater buildUpdater() {
+        if (accumulationBatches <= 1) {
+            return new RmsProp();
+        }
+        final double base = RmsProp.DEFAULT_RMSPROP_LEARNING_RATE;
+        // square root scaling, RmsProp already normalizes the gradient magnitude, so linear scaling would overshoot
+        final double target = base * Math.sqrt(accumulationBatches);
+        if (warmupUpdates <= 0) {
+            return new RmsProp(target);
+        }
+        final Map<Integer, Double> learningRates = new HashMap<>();
+        for (int update = 0; update < warmupUpdates; ++update) {
+            learningRates.put(update, base + (target - base) * update / warmupUpdates);
+        }
+        learningRates.put(warmupUpdates, target);
+        return new RmsProp(new MapSchedule(ScheduleType.ITERATION, learningRates));
+    }
+
+    private void applyUpdate(final MultiLayerNetwork network, final INDArray accumulated, final int examples) {
+        // the updater turns the summed gradients into the update in place (regularization, averaging, RmsProp)
+        final INDArray gradients = network.getGradientsViewArray();
+        gradients.assign(accumulated);
+        network.getUpdater().update(network, network.gradient(), updates, epoch, examples);
+        network.params().subi(gradients);
+        updates++;
+        if (network.getListeners() != null) {
+            for (final IterationListener listener : network.getListeners()) {
+                listener.iterationDone(network, updates, epoch);
+            }
+        }
+    }
+
+    /**
+     * fits one epoch, summing up the gradients of {@link #accumulationBatches} batches for each update, so we get the
+     * update efficiency of large batches while keeping the memory footprint of small ones
+     */
+    private void fitEpochAccumulating(final MultiLayerNetwork network, final DataSet data) {
+        final int[] order = buildPermutation(data.numExamples(), shuffleSeed, epoch);
+        // the gradient view is only allocated on the first backprop of a new network
+        if (network.getGradientsViewArray() == null) {
+            network.initGradientsView();
+        }
+        final INDArray gradients = network.getGradientsViewArray();
+        final INDArray accumulated = Nd4j.zeros(gradients.shape());
+        int accumulatedBatches = 0;
+        int accumulatedExamples = 0;
+        for (int from = 0; from < order.length; from += batchSize) {
+            final int[] rows = Arrays.copyOfRange(order, from, Math.min(from + batchSize, order.length));
+            network.setInput(data.getFeatures().getRows(rows));
+            network.setLabels(data.getLabels().getRows(rows));
+            // gradients are summed over the examples, the updater divides by the number of examples
+            network.computeGradientAndScore();
+            accumulated.addi(gradients);
+            accumulatedBatches++;
+            accumulatedExamples += rows.length;
+            if (accumulatedBatches == accumulationBatches || from + batchSize >= order.length) {
+                applyUpdate(network, accumulated, accumulatedExamples);
+                accumulated.assign(0);
+                accumulatedBatches = 0;
+                accumulatedExamples = 0;
+            }
+        }
+    }
+
     @Override
     public void train() throws Exception {
-        final File trainingFile   = new File(preprocessingFolder, "training.csv");
-        final DataSetIterator iter = buildIterator(trainingFile);
-        nn.fit(iter);
+        final MultiLayerNetwork network = getNetwork();
+        if (listenersEnabled && !listenersAttached) {
+            attachListeners();
+        }
+        final DataSet data = loadTrainingData();
+        if (accumulationBatches > 1) {
+            fitEpochAccumulating(network, data);
+        } else {
+            fitEpoch(network, data, shuffleSeed, epoch);
+        }
+        epoch++;
+    }
+
+    @Override
+    public long getEpochExamples() {
+        return trainingData == null ? 0 : trainingData.numExamples();
+    }
+
+    @Override
+    public double getScore() {
+        return nn == null ? Double.NaN : nn.score();
     }
 
     private void runEvaluation(final File file) throws Exception {
         final DataSetIterator iter = buildIterator(file);
-        final RegressionEvaluation evaluation = nn.evaluateRegression(iter);
+        final RegressionEvaluation evaluation = getNetwork().evaluateRegression(iter);
         log.info("\n" + evaluation.stats());
         // TODO: it can make sense to run each example manually here, print individual results so we can identify which
         // cases are especially problematic
@@ -138,16 +346,51 @@ public class MultilayerTrainer implements Trainer {
         runEvaluation(testFile);
     }
 
+    private void readTrainingState(final File file) throws IOException {
+        final Properties state = new Properties();
+        try (final ZipFile zip = new ZipFile(file)) {
+            final ZipEntry entry = zip.getEntry(SHUFFLE_STATE_ENTRY);
+            if (entry == null) {
+                // older checkpoints do not contain the shuffling state, keep the seed & derive epoch from file name
+                epoch = TrainingApp.parseEpoch(file);
+                log.warn("No shuffle state in " + file + ", assuming epoch " + epoch);
+                return;
+            }
+            try (final InputStream in = zip.getInputStream(entry)) {
+                state.load(in);
+            }
+        }
+        shuffleSeed = Long.parseLong(state.getProperty("seed"));
+        epoch = Integer.parseInt(state.getProperty("epoch"));
+        updates = Integer.parseInt(state.getProperty("updates", "0"));
+    }
+
+    private void writeTrainingState(final File file) throws IOException {
+        final Properties state = new Properties();
+        state.setProperty("seed", Long.toString(shuffleSeed));
+        state.setProperty("epoch", Integer.toString(epoch));
+        state.setProperty("updates", Integer.toString(updates));
+        // add the state as an additional entry to the zip written by the ModelSerializer
+        final URI uri = URI.create("jar:" + file.toURI());
+        try (final FileSystem zip = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap());
+             final OutputStream out = Files.newOutputStream(zip.getPath(SHUFFLE_STATE_ENTRY))) {
+            state.store(out, "per-epoch shuffling & update state");
+        }
+    }
+
     @Override
     public void loadState(final File file) throws IOException {
         nn = ModelSerializer.restoreMultiLayerNetwork(file, true);
-        attachListeners();
+        readTrainingState(file);
+        // listeners are attached once training starts
+        listenersAttached = false;
     }
 
     @Override
     public void saveState(final File file) throws IOException {
         if (nn != null) {
             ModelSerializer.writeModel(nn, file, true);
+            writeTrainingState(file);
         }
     }
 }
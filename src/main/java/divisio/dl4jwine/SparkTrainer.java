@@ -0,0 +1,152 @@
+package divisio.dl4jwine;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
+import org.datavec.spark.transform.misc.StringToWritablesFunction;
+import org.deeplearning4j.eval.RegressionEvaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.spark.api.TrainingMaster;
+import org.deeplearning4j.spark.datavec.DataVecDataSetFunction;
+import org.deeplearning4j.spark.impl.multilayer.SparkDl4jMultiLayer;
+import org.deeplearning4j.spark.impl.paramavg.ParameterAveragingTrainingMaster;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Trains the same network as the {@link MultilayerTrainer}, but distributed via Spark using parameter averaging.
+ * Use a local master like "local[4]" for testing and a cluster master in production - in the latter case the
+ * preprocessing folder has to be reachable under the same path from all workers. Files are passed to Spark as file: URIs,
+ * so a cluster default file system like HDFS does not reinterpret the local paths.
+ * Checkpoints are plain {@link ModelSerializer} files, just like the ones of the {@link MultilayerTrainer}, so they can
+ * be tested & resumed with either trainer.
+ */
+public class SparkTrainer implements Trainer {
+
+    private static final Logger log = LoggerFactory.getLogger(SparkTrainer.class);
+
+    //how many minibatches each worker fits before the parameters are averaged
+    private static final int AVERAGING_FREQUENCY = 5;
+    //how many minibatches each worker loads asynchronously in advance
+    private static final int PREFETCH_BATCHES = 2;
+
+    private final File preprocessingFolder;
+    private final String sparkMaster;
+
+    // network & spark objects are created on first use, so preprocessing can run its own spark context before
+    private MultiLayerNetwork nn;
+    private JavaSparkContext sc;
+    private SparkDl4jMultiLayer sparkNet;
+    private JavaRDD<DataSet> trainingData;
+    private long trainingExamples;
+
+    /**
+     * @param preprocessingFolder folder with the preprocessed CSVs
+     * @param sparkMaster spark master url, e.g. "local[*]" or "spark://host:7077"
+     */
+    public SparkTrainer(final File preprocessingFolder, final String sparkMaster) throws Exception {
+        this.preprocessingFolder = preprocessingFolder;
+        this.sparkMaster = sparkMaster;
+    }
+
+    @Override
+    public String getTag() {
+        return "multilayer_less_overfit_large_batch_size_spark";
+    }
+
+    private JavaSparkContext getSparkContext() {
+        if (sc == null) {
+            final SparkConf conf = new SparkConf();
+            conf.setMaster(sparkMaster);
+            conf.setAppName(getTag());
+            sc = new JavaSparkContext(conf);
+            log.info("Started spark context on " + sparkMaster + " with parallelism " + sc.defaultParallelism());
+        }
+        return sc;
+    }
+
+    /**
+     * @return number of tasks spark runs in parallel, i.e. the number of workers we average over
+     */
+    public int getParallelism() {
+        return getSparkContext().defaultParallelism();
+    }
+
+    private SparkDl4jMultiLayer getSparkNet() {
+        if (sparkNet == null) {
+            if (nn == null) {
+                //build network
+                nn = new MultiLayerNetwork(MultilayerTrainer.buildConfiguration());
+                nn.init();
+            }
+            final TrainingMaster trainingMaster = new ParameterAveragingTrainingMaster.Builder(1)//one example per DataSet
+                    .batchSizePerWorker(MultilayerTrainer.batchSize)
+                    .averagingFrequency(AVERAGING_FREQUENCY)
+                    .workerPrefetchNumBatches(PREFETCH_BATCHES)
+                    .build();
+            sparkNet = new SparkDl4jMultiLayer(getSparkContext(), nn, trainingMaster);
+        }
+        return sparkNet;
+    }
+
+    private JavaRDD<DataSet> buildRdd(final File csvFile) {
+        return getSparkContext().textFile(csvFile.toURI().toString())
+                .map(new StringToWritablesFunction(new CSVRecordReader()))
+                .map(new DataVecDataSetFunction(MultilayerTrainer.idxOutputFeature, -1, true));
+    }
+
+    @Override
+    public void train() throws Exception {
+        if (trainingData == null) {
+            trainingData = buildRdd(new File(preprocessingFolder, "training.csv")).cache();
+            trainingExamples = trainingData.count();
+        }
+        // the training master repartitions the data for each fit, so each epoch sees a different split & order
+        nn = getSparkNet().fit(trainingData);
+    }
+
+    @Override
+    public long getEpochExamples() {
+        return trainingExamples;
+    }
+
+    @Override
+    public double getScore() {
+        return sparkNet == null ? Double.NaN : sparkNet.getScore();
+    }
+
+    private void runEvaluation(final File file) throws Exception {
+        final RegressionEvaluation evaluation = getSparkNet().evaluateRegression(buildRdd(file));
+        log.info("\n" + evaluation.stats());
+    }
+
+    @Override
+    public void validate() throws Exception {
+        runEvaluation(new File(preprocessingFolder, "validation.csv"));
+    }
+
+    @Override
+    public void test() throws Exception {
+        runEvaluation(new File(preprocessingFolder, "testing.csv"));
+    }
+
+    @Override
+    public void loadState(final File file) throws IOException {
+        nn = ModelSerializer.restoreMultiLayerNetwork(file, true);
+        // wrap the restored network on next use
+        sparkNet = null;
+    }
+
+    @Override
+    public void saveState(final File file) throws IOException {
+        if (nn != null) {
+            ModelSerializer.writeModel(nn, file, true);
+        }
+    }
+}
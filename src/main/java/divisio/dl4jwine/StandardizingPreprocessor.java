@@ -29,10 +29,14 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
 
 
 public class StandardizingPreprocessor implements Preprocessor {
@@ -70,20 +74,57 @@ public class StandardizingPreprocessor implements Preprocessor {
     //NOTE: do *not* use addColumnFloat - the column type cannot be analyzed and will cause an "Unknown column type: Float"
     // error
 
+    /**
+     * schema of the raw data with the additional wine type column
+     */
+    public static final Schema wineTypeSchema = addWineType(0).getFinalSchema();
+
+    /**
+     * default columns for stratified splitting, so both wine types & all quality scores appear in every set
+     */
+    public static final List<String> DEFAULT_STRATIFICATION_COLUMNS = Arrays.asList("wine type", "quality");
+
+    // testing, validation & training ratios
+    private static final double[] SPLIT_RATIOS = {0.1, 0.1, 0.8};
+    private static final long SPLIT_SEED = 1234567;
+    private static final int SPLIT_CHUNK_SIZE = 10000;
+    // file in the preprocessed folder marking complete output, containing the tag of the preprocessing that created it
+    private static final String TAG_FILE = "preprocessing.tag";
+
     private final File rawDataFolder;
     private final File preprocessingFolder;
+    private final List<String> stratificationColumns;
     private DataAnalysis dataAnalysisRaw;
     private DataAnalysis dataAnalysisStandardized;
 
     public StandardizingPreprocessor(final File rawDataFolder, final File preprocessingFolder) {
+        this(rawDataFolder, preprocessingFolder, DEFAULT_STRATIFICATION_COLUMNS);
+    }
+
+    /**
+     * @param preprocessingFolder parent folder of the output, which is written to a subfolder named after the tag
+     * @param stratificationColumns names of the columns in {@link #wineTypeSchema} used for stratified splitting
+     */
+    public StandardizingPreprocessor(final File rawDataFolder, final File preprocessingFolder,
+                                     final List<String> stratificationColumns) {
         this.rawDataFolder = rawDataFolder;
         this.preprocessingFolder = preprocessingFolder;
+        this.stratificationColumns = stratificationColumns;
     }
 
     @Override
     public String getTag() {
+        return buildTag(stratificationColumns);
+    }
+
+    /**
+     * @return the tag of a preprocessor with the given stratification columns
+     */
+    public static String buildTag(final List<String> stratificationColumns) {
         // a short-ish memorable description of what this class does
-        return "add_wine_type_shuffle_standardize";
+        return "add_wine_type_stratify_"
+                + String.join("_", stratificationColumns).replace(' ', '_')
+                + "_standardize";
     }
 
     @Override
@@ -97,7 +138,7 @@ public class StandardizingPreprocessor implements Preprocessor {
         }
     }
 
-    private List<List<Writable>> readAll(final RecordReader rr) {
+    private static List<List<Writable>> readAll(final RecordReader rr) {
         final ArrayList<List<Writable>> result = new ArrayList<>();
         while (rr.hasNext()) {
             result.add(rr.next());
@@ -131,21 +172,18 @@ public class StandardizingPreprocessor implements Preprocessor {
 
     }
 
-    @Override
-    public void preprocess() throws Exception {
-
-        final File trainingFile   = new File(preprocessingFolder, "training.csv");
-        final File validationFile = new File(preprocessingFolder, "validation.csv");
-        final File testingFile    = new File(preprocessingFolder, "testing.csv");
-
-        // check if target files all exist
-        if (trainingFile.isFile() && validationFile.isFile() && testingFile.isFile()) {
-            log.info("Output files exist, skipping preprocessing.");
-            return;
-        }
-        log.info("Output does not exist, starting preprocessing.");
+    private static TransformProcess addWineType(final int wineType) {
+        return new TransformProcess.Builder(inputSchema)
+                .addConstantIntegerColumn("wine type", wineType)
+                .build();
+    }
 
-        // if not, read input CSVs
+    /**
+     * Reads the raw CSVs of both wine types and adds the wine type as last column.
+     * @param rawDataFolder folder with the downloaded raw data
+     * @return all records in file order, described by {@link #wineTypeSchema}
+     */
+    public static List<List<Writable>> readRawData(final File rawDataFolder) throws Exception {
         final File whiteWineFile = new File(rawDataFolder, "winequality-red.csv");
         final File redWineFile   = new File(rawDataFolder, "winequality-white.csv");
 
@@ -159,29 +197,63 @@ public class StandardizingPreprocessor implements Preprocessor {
         final List<List<Writable>> redWine = readAll(rr);
 
         // transform to add wine type
-        final TransformProcess tpWhite = new TransformProcess.Builder(inputSchema)
-                .addConstantIntegerColumn("wine type", 0)
-                .build();
-        final TransformProcess tpRed = new TransformProcess.Builder(inputSchema)
-                .addConstantIntegerColumn("wine type", 1)
-                .build();
+        final TransformProcess tpWhite = addWineType(0);
+        final TransformProcess tpRed = addWineType(1);
 
         //process & concatenate
         final List<List<Writable>> allWineWithType = new ArrayList<>();
         allWineWithType.addAll(LocalTransformExecutor.execute(whiteWine, tpWhite));
         allWineWithType.addAll(LocalTransformExecutor.execute(redWine,   tpRed));
+        return allWineWithType;
+    }
+
+    @Override
+    public void preprocess() throws Exception {
 
-        // shuffle
-        Collections.shuffle(allWineWithType);
+        // one subfolder per tag, so models trained on another preprocessing keep their data
+        final File outputFolder   = TrainingApp.buildPreprocessedFolder(preprocessingFolder, getTag());
+        final File trainingFile   = new File(outputFolder, "training.csv");
+        final File validationFile = new File(outputFolder, "validation.csv");
+        final File testingFile    = new File(outputFolder, "testing.csv");
+        final File tagFile        = new File(outputFolder, TAG_FILE);
 
-        // split into testing, validation & training data
-        // TODO: add stratified sampling example so wine type & result scores are properly distributed in each set
+        // check if target files all exist and were completely written by this preprocessing
+        if (trainingFile.isFile() && validationFile.isFile() && testingFile.isFile()) {
+            final String existingTag = tagFile.isFile()
+                    ? new String(Files.readAllBytes(tagFile.toPath()), Charsets.UTF_8).trim()
+                    : null;
+            if (getTag().equals(existingTag)) {
+                log.info("Output files exist, skipping preprocessing.");
+                return;
+            }
+            log.info("Output files are incomplete, redoing preprocessing.");
+        } else {
+            log.info("Output does not exist, starting preprocessing.");
+        }
+
+        // if not, read input CSVs
+        final List<List<Writable>> allWineWithType = readRawData(rawDataFolder);
+
+        // split into testing, validation & training data, stratified so rare values are properly distributed
         // TODO: remove outliers, add clamping to min/max values
-        final int splitpoint1 = allWineWithType.size() / 10;
-        final int splitpoint2 = splitpoint1 * 2;
-        List<List<Writable>> testing    = allWineWithType.subList(0, splitpoint1);
-        List<List<Writable>> validation = allWineWithType.subList(splitpoint1, splitpoint2);
-        List<List<Writable>> training   = allWineWithType.subList(splitpoint2, allWineWithType.size());
+        final int[] stratificationIndices = new int[stratificationColumns.size()];
+        for (int i = 0; i < stratificationIndices.length; ++i) {
+            stratificationIndices[i] = wineTypeSchema.getIndexOfColumn(stratificationColumns.get(i));
+        }
+        final StratifiedSplitter splitter = new StratifiedSplitter(stratificationIndices, SPLIT_RATIOS, SPLIT_SEED,
+                SPLIT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+        final List<List<Writable>> testingSplit    = new ArrayList<>();
+        final List<List<Writable>> validationSplit = new ArrayList<>();
+        final List<List<Writable>> trainingSplit   = new ArrayList<>();
+        final StratifiedSplitter.Counts splitCounts = splitter.split(allWineWithType,
+                Arrays.<Consumer<List<Writable>>>asList(testingSplit::add, validationSplit::add, trainingSplit::add));
+        log.info("Testing / validation / training " + splitCounts);
+        // the splits keep the input order, i.e. red before white wines - the spark trainer reads the training file in
+        // contiguous partitions, so these must not be sorted by wine type
+        Collections.shuffle(trainingSplit, new Random(SPLIT_SEED));
+        List<List<Writable>> testing    = testingSplit;
+        List<List<Writable>> validation = validationSplit;
+        List<List<Writable>> training   = trainingSplit;
 
         // determine normalization parameters from training data
         SparkConf conf = new SparkConf();
@@ -191,11 +263,11 @@ public class StandardizingPreprocessor implements Preprocessor {
 
         JavaRDD<List<Writable>> trainingRdd = sc.parallelize(training);
         int maxHistogramBuckets = 50;
-        dataAnalysisRaw = AnalyzeSpark.analyze(tpRed.getFinalSchema(), trainingRdd, maxHistogramBuckets);
+        dataAnalysisRaw = AnalyzeSpark.analyze(wineTypeSchema, trainingRdd, maxHistogramBuckets);
         log.info(dataAnalysisRaw.toString());
 
         // apply normalization to all necessary columns
-        final TransformProcess tpNormalize = new TransformProcess.Builder(tpRed.getFinalSchema())
+        final TransformProcess tpNormalize = new TransformProcess.Builder(wineTypeSchema)
                 .reorderColumns("wine type")//move wine type to front, so quality is last again
                 .normalize("fixed acidity", Normalize.Standardize, dataAnalysisRaw)
                 .normalize("volatile acidity", Normalize.Standardize, dataAnalysisRaw)
@@ -217,10 +289,14 @@ public class StandardizingPreprocessor implements Preprocessor {
         trainingRdd = sc.parallelize(training);
         dataAnalysisStandardized = AnalyzeSpark.analyze(tpNormalize.getFinalSchema(), trainingRdd);
         log.info(dataAnalysisStandardized.toString());
+        // stop the context again, so a SparkTrainer can start its own one later on
+        sc.stop();
 
         // write data to new CSVs
         writeAll(training, trainingFile);
         writeAll(validation, validationFile);
         writeAll(testing, testingFile);
+        // written last, so an interrupted preprocessing is redone
+        Files.write(tagFile.toPath(), getTag().getBytes(Charsets.UTF_8));
     }
 }
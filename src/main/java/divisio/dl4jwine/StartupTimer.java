@@ -0,0 +1,33 @@
+package divisio.dl4jwine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Logs how long the individual startup phases of an app take, starting with the JVM start itself.
+ */
+public class StartupTimer {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupTimer.class);
+
+    private final long jvmStart;
+    private long phaseStart;
+
+    public StartupTimer() {
+        jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        phaseStart = jvmStart;
+    }
+
+    /**
+     * logs the time since the end of the last phase (or the JVM start for the first one)
+     * @param phase name of the phase that just finished
+     */
+    public void phaseDone(final String phase) {
+        final long now = System.currentTimeMillis();
+        log.info("Startup phase '" + phase + "' took " + (now - phaseStart) + "ms, "
+                + (now - jvmStart) + "ms since JVM start.");
+        phaseStart = now;
+    }
+}
@@ -0,0 +1,344 @@
+package divisio.dl4jwine;
+
+import org.datavec.api.writable.Writable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Splits records into several sets (e.g. testing, validation & training) so that each stratum - each combination of
+ * values in the stratification columns - is distributed according to the target ratios, even rare ones.
+ * <p>
+ * The input is streamed twice in chunks, so it has to be re-readable, e.g. by reopening the file for each iteration -
+ * a single pass streaming mode is not supported. The first pass counts the records per stratum, from which the exact
+ * number of records per output is determined with the largest remainder method, giving each output at least one record
+ * if the stratum has enough of them. The second pass draws, chunk by chunk in input order, how many of the chunk's
+ * records of each stratum go to each output from the records the stratum still has to give to each output (a
+ * multivariate hypergeometric draw), and then assigns the records within the chunk in a random order. So each output
+ * receives exactly its target, and every record of a stratum has the same chance to end up in each output, wherever
+ * it is in the input. The result depends on the seed, the input order and the chunk size, but not on the number of
+ * threads. Chunks are counted & assigned in parallel, with only a bounded number of them in memory.
+ */
+public class StratifiedSplitter {
+
+    private final int[] stratificationColumns;
+    private final double[] ratios;
+    private final long seed;
+    private final int chunkSize;
+    private final int threads;
+
+    /**
+     * @param stratificationColumns indices of the columns whose values define a stratum
+     * @param ratios target ratio for each output, normalized to sum up to one
+     * @param seed seed for the random assignment within each stratum & chunk
+     * @param chunkSize number of records processed as one unit of work
+     * @param threads number of chunks that are processed in parallel
+     */
+    public StratifiedSplitter(final int[] stratificationColumns, final double[] ratios, final long seed,
+                              final int chunkSize, final int threads) {
+        this.stratificationColumns = stratificationColumns.clone();
+        double sum = 0;
+        for (final double ratio : ratios) {
+            sum += ratio;
+        }
+        this.ratios = new double[ratios.length];
+        for (int i = 0; i < ratios.length; ++i) {
+            this.ratios[i] = ratios[i] / sum;
+        }
+        this.seed = seed;
+        this.chunkSize = chunkSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Counters per stratum, e.g. the number of records assigned to each output. Counts of several chunks can be merged.
+     */
+    public static class Counts {
+
+        private final Map<String, long[]> counts = new TreeMap<>();
+        private final int nCounters;
+
+        public Counts(final int nCounters) {
+            this.nCounters = nCounters;
+        }
+
+        private long[] get(final String stratum) {
+            return counts.computeIfAbsent(stratum, key -> new long[nCounters]);
+        }
+
+        /**
+         * adds the counts of the other instance to this one
+         */
+        public void merge(final Counts other) {
+            for (final Map.Entry<String, long[]> entry : other.counts.entrySet()) {
+                final long[] target = get(entry.getKey());
+                for (int i = 0; i < nCounters; ++i) {
+                    target[i] += entry.getValue()[i];
+                }
+            }
+        }
+
+        /**
+         * @return the counters of the given stratum, all zero for unknown strata
+         */
+        public long[] getCounts(final String stratum) {
+            final long[] result = counts.get(stratum);
+            return result == null ? new long[nCounters] : result.clone();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder("records per stratum & split:");
+            for (final Map.Entry<String, long[]> entry : counts.entrySet()) {
+                result.append("\n").append(entry.getKey()).append(": ");
+                for (int i = 0; i < nCounters; ++i) {
+                    result.append(i > 0 ? " / " : "").append(entry.getValue()[i]);
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * assignment result of a single chunk
+     */
+    private static class ChunkResult {
+        private final List<List<List<Writable>>> outputs = new ArrayList<>();
+        private final Counts counts;
+
+        private ChunkResult(final int nOutputs) {
+            for (int i = 0; i < nOutputs; ++i) {
+                outputs.add(new ArrayList<>());
+            }
+            counts = new Counts(nOutputs);
+        }
+    }
+
+    /**
+     * @return number of records per output for a stratum of the given size: the largest remainder distribution of the
+     * ratios, but with at least one record for each output with a non-zero ratio if there are enough records
+     */
+    static long[] targets(final long size, final double[] ratios) {
+        final long[] result = new long[ratios.length];
+        final double[] remainders = new double[ratios.length];
+        long assigned = 0;
+        for (int i = 0; i < ratios.length; ++i) {
+            final double quota = ratios[i] * size;
+            result[i] = (long) Math.floor(quota);
+            remainders[i] = quota - result[i];
+            assigned += result[i];
+        }
+        for (long left = size - assigned; left > 0; --left) {
+            int best = 0;
+            for (int i = 1; i < ratios.length; ++i) {
+                if (remainders[i] > remainders[best]) {
+                    best = i;
+                }
+            }
+            result[best]++;
+            remainders[best] = -1;
+        }
+        int nonZeroRatios = 0;
+        for (final double ratio : ratios) {
+            if (ratio > 0) {
+                nonZeroRatios++;
+            }
+        }
+        if (size >= nonZeroRatios) {
+            for (int i = 0; i < ratios.length; ++i) {
+                if (ratios[i] > 0 && result[i] == 0) {
+                    // take the record from the largest output, which has at least two records at this point
+                    int largest = 0;
+                    for (int j = 1; j < ratios.length; ++j) {
+                        if (result[j] > result[largest]) {
+                            largest = j;
+                        }
+                    }
+                    result[largest]--;
+                    result[i]++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Draws how many of the given number of records go to each output, without replacement from the records each
+     * output still has to receive. Updates the remaining records.
+     * @return number of the drawn records per output
+     */
+    static long[] draw(final long count, final long[] remaining, final Random random) {
+        long left = 0;
+        for (final long r : remaining) {
+            left += r;
+        }
+        if (count > left) {
+            throw new IllegalStateException("Input changed between counting & assignment");
+        }
+        final long[] result = new long[remaining.length];
+        for (long i = 0; i < count; ++i, --left) {
+            long pick = (long) (random.nextDouble() * left);
+            int output = 0;
+            while (pick >= remaining[output]) {
+                pick -= remaining[output];
+                output++;
+            }
+            remaining[output]--;
+            result[output]++;
+        }
+        return result;
+    }
+
+    private String stratumOf(final List<Writable> record) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < stratificationColumns.length; ++i) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(record.get(stratificationColumns[i]).toString());
+        }
+        return result.toString();
+    }
+
+    /**
+     * creates the work for one chunk, called on the calling thread in input order
+     */
+    private interface ChunkTaskFactory<T> {
+        Callable<T> create(List<List<Writable>> chunk, int chunkIndex);
+    }
+
+    /**
+     * Reads the input in chunks, processes them in parallel and hands the results to the handler in input order, on
+     * the calling thread. At most two chunks per thread are held in memory.
+     */
+    private <T> void forEachChunk(final Iterable<List<Writable>> input, final ExecutorService executor,
+                                  final ChunkTaskFactory<T> factory, final Consumer<T> handler) throws Exception {
+        final Queue<Future<T>> pending = new ArrayDeque<>();
+        final Iterator<List<Writable>> records = input.iterator();
+        int chunkIndex = 0;
+        while (records.hasNext()) {
+            final List<List<Writable>> chunk = new ArrayList<>(chunkSize);
+            while (records.hasNext() && chunk.size() < chunkSize) {
+                chunk.add(records.next());
+            }
+            pending.add(executor.submit(factory.create(chunk, chunkIndex++)));
+            if (pending.size() >= threads * 2) {
+                handler.accept(pending.poll().get());
+            }
+        }
+        while (!pending.isEmpty()) {
+            handler.accept(pending.poll().get());
+        }
+    }
+
+    /**
+     * Reads all records from the input and hands each one to exactly one of the outputs. Outputs are only called from
+     * the calling thread, in input order per output.
+     * @param input records to split, iterated twice, both times in the same order - an iterable over a stream that can
+     *              only be read once is not supported
+     * @param outputs one consumer per target ratio
+     * @return number of records per stratum & output
+     */
+    public Counts split(final Iterable<List<Writable>> input,
+                        final List<Consumer<List<Writable>>> outputs) throws Exception {
+        if (outputs.size() != ratios.length) {
+            throw new IllegalArgumentException("Expected " + ratios.length + " outputs, got " + outputs.size());
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // first pass: count records per stratum & chunk
+            final List<Counts> chunkCounts = new ArrayList<>();
+            forEachChunk(input, executor, (chunk, chunkIndex) -> () -> {
+                final Counts counts = new Counts(1);
+                for (final List<Writable> record : chunk) {
+                    counts.get(stratumOf(record))[0]++;
+                }
+                return counts;
+            }, chunkCounts::add);
+
+            final Counts totals = new Counts(1);
+            chunkCounts.forEach(totals::merge);
+            // records each stratum still has to give to each output, reduced by every chunk in input order
+            final Counts remaining = new Counts(ratios.length);
+            for (final Map.Entry<String, long[]> entry : totals.counts.entrySet()) {
+                System.arraycopy(targets(entry.getValue()[0], ratios), 0, remaining.get(entry.getKey()), 0, ratios.length);
+            }
+
+            // second pass: draw the outputs per stratum & chunk in input order, assign them in random order in parallel
+            final Counts result = new Counts(ratios.length);
+            forEachChunk(input, executor, (chunk, chunkIndex) -> {
+                if (chunkIndex >= chunkCounts.size()) {
+                    throw new IllegalStateException("Input changed between counting & assignment");
+                }
+                final Random random = new Random(seed + chunkIndex * 0x9E3779B97F4A7C15L);
+                final Map<String, int[]> assignments = new TreeMap<>();
+                for (final Map.Entry<String, long[]> entry : chunkCounts.get(chunkIndex).counts.entrySet()) {
+                    final long[] drawn = draw(entry.getValue()[0], remaining.get(entry.getKey()), random);
+                    final int[] assignment = new int[(int) entry.getValue()[0]];
+                    int next = 0;
+                    for (int output = 0; output < drawn.length; ++output) {
+                        for (long i = 0; i < drawn[output]; ++i) {
+                            assignment[next++] = output;
+                        }
+                    }
+                    assignments.put(entry.getKey(), assignment);
+                }
+                return () -> {
+                    // the random generator is only used by this task from here on, so the order stays deterministic
+                    for (final int[] assignment : assignments.values()) {
+                        for (int i = assignment.length - 1; i > 0; --i) {
+                            final int j = random.nextInt(i + 1);
+                            final int swap = assignment[i];
+                            assignment[i] = assignment[j];
+                            assignment[j] = swap;
+                        }
+                    }
+                    final ChunkResult chunkResult = new ChunkResult(ratios.length);
+                    final Counts positions = new Counts(1);
+                    for (final List<Writable> record : chunk) {
+                        final String stratum = stratumOf(record);
+                        final int[] assignment = assignments.get(stratum);
+                        final long[] position = positions.get(stratum);
+                        if (assignment == null || position[0] >= assignment.length) {
+                            throw new IllegalStateException("Input changed between counting & assignment");
+                        }
+                        final int output = assignment[(int) position[0]++];
+                        chunkResult.outputs.get(output).add(record);
+                        chunkResult.counts.get(stratum)[output]++;
+                    }
+                    return chunkResult;
+                };
+            }, chunkResult -> {
+                for (int i = 0; i < outputs.size(); ++i) {
+                    chunkResult.outputs.get(i).forEach(outputs.get(i));
+                }
+                result.merge(chunkResult.counts);
+            });
+
+            // fewer records in the second pass would silently skew the split
+            for (final Map.Entry<String, long[]> entry : totals.counts.entrySet()) {
+                long assigned = 0;
+                for (final long count : result.getCounts(entry.getKey())) {
+                    assigned += count;
+                }
+                if (assigned != entry.getValue()[0]) {
+                    throw new IllegalStateException("Input changed between counting & assignment");
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -26,6 +26,7 @@ public class TestingApp {
     private int startEpoch = -1;
 
     public static void main(final String[] args ) throws Exception {
+        final StartupTimer startupTimer = new StartupTimer();
         final TestingApp app = new TestingApp();
 
         // parse command line params
@@ -37,7 +38,12 @@ public class TestingApp {
             return;
         }
 
-        final Trainer trainer = new MultilayerTrainer(app.preprocessingFolder);
+        startupTimer.phaseDone("jvm & argument parsing");
+
+        // the output folder is modelFolder/[preprocessing_version]/[model_version], test on the data of that version
+        final String preprocessingTag = app.outputFolder.getAbsoluteFile().getParentFile().getName();
+        final File preprocessedFolder = TrainingApp.buildPreprocessedFolder(app.preprocessingFolder, preprocessingTag);
+        final Trainer trainer = new MultilayerTrainer(preprocessedFolder);
 
         // check epoch state to restore (will default to null if there is none, causing a fresh training start)
         final File epochFile = TrainingApp.findEpochFile(app.outputFolder, app.startEpoch);
@@ -49,7 +55,24 @@ public class TestingApp {
 
         TrainingApp.initLogFile(logFile);
         log.info("Using log file " + logFile);
+        startupTimer.phaseDone("log setup");
+
+        if (!new File(preprocessedFolder, "testing.csv").isFile()) {
+            log.error("No testing data for preprocessing " + preprocessingTag + " in " + preprocessedFolder);
+            System.exit(-1);
+            return;
+        }
+
+        // check the model to test exists before initializing anything heavy
+        if (epochFile == null || !(epochFile.isFile() && epochFile.canRead())) {
+            log.error("Cannot read epoch file " + epochFile);
+            System.exit(-1);
+            return;
+        }
+        trainer.loadState(epochFile);
+        startupTimer.phaseDone("state restore");
 
         trainer.test();
+        startupTimer.phaseDone("testing");
     }
 }
@@ -16,6 +16,20 @@ public interface Trainer {
      */
     void train() throws Exception;
 
+    /**
+     * @return number of examples trained on in the last epoch, 0 if unknown
+     */
+    default long getEpochExamples() {
+        return 0;
+    }
+
+    /**
+     * @return score of the network after the last epoch, NaN if unknown
+     */
+    default double getScore() {
+        return Double.NaN;
+    }
+
     /**
      * run validation
      */
@@ -13,6 +13,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 /**
  * Contains the data download, preprocessing & training steps
@@ -37,11 +38,41 @@ public class TrainingApp {
     private int startEpoch = -1;
     @Parameter(names = {"-e", "--epochs"}, description = "Number of epochs to train")
     private int epochs = 1000;
+    @Parameter(names = {"-sc", "--stratificationColumns"}, description = "Comma separated columns for stratified splitting.")
+    private List<String> stratificationColumns = StandardizingPreprocessor.DEFAULT_STRATIFICATION_COLUMNS;
+    @Parameter(names = {"-t", "--trainer"}, description = "Trainer to use: multilayer (single process) or spark.")
+    private String trainerName = "multilayer";
+    @Parameter(names = {"-sm", "--sparkMaster"}, description = "Spark master url for the spark trainer, e.g. local[4].")
+    private String sparkMaster = "local[*]";
+    @Parameter(names = {"-ab", "--accumulationBatches"}, description = "Number of batches to accumulate gradients over before each update (multilayer trainer).")
+    private int accumulationBatches = 1;
+    @Parameter(names = {"-wu", "--warmupUpdates"}, description = "Number of updates to warm up the learning rate when accumulating gradients.")
+    private int warmupUpdates = 100;
+
+    public static Trainer buildTrainer(final String trainerName, final File preprocessingFolder,
+                                       final String sparkMaster, final int accumulationBatches,
+                                       final int warmupUpdates) throws Exception {
+        switch (trainerName) {
+            case "multilayer":
+                return new MultilayerTrainer(preprocessingFolder, accumulationBatches, warmupUpdates);
+            case "spark":
+                return new SparkTrainer(preprocessingFolder, sparkMaster);
+            default:
+                throw new IllegalArgumentException("Unknown trainer: " + trainerName);
+        }
+    }
 
     public static File buildOutputFolder(final File modelFolder, final Preprocessor preprocessor, final Trainer trainer) {
         return new File(modelFolder, preprocessor.getTag() + "/" + trainer.getTag());
     }
 
+    /**
+     * @return the folder with the output of the preprocessing with the given tag
+     */
+    public static File buildPreprocessedFolder(final File preprocessingFolder, final String preprocessingTag) {
+        return new File(preprocessingFolder, preprocessingTag);
+    }
+
     public static File buildEpochFile(final File outputFolder, final int epoch) {
         return new File(outputFolder, EPOCH_FILE_PREFIX + epoch + EPOCH_FILE_SUFFIX);
     }
@@ -103,6 +134,8 @@ public class TrainingApp {
     }
 
     public static void main(final String[] args ) throws Exception {
+        final StartupTimer startupTimer = new StartupTimer();
+
         // create instance of our AI Application
         final TrainingApp app = new TrainingApp();
 
@@ -115,9 +148,15 @@ public class TrainingApp {
             return;
         }
 
+        startupTimer.phaseDone("jvm & argument parsing");
+
         // create trainer and preprocessor
-        final Preprocessor preprocessor = new StandardizingPreprocessor(app.rawDataFolder, app.preprocessingFolder);
-        final Trainer trainer = new MultilayerTrainer(app.preprocessingFolder);
+        // (both are cheap to create, spark, UI & network are only initialized once they are needed)
+        final Preprocessor preprocessor = new StandardizingPreprocessor(app.rawDataFolder, app.preprocessingFolder,
+                app.stratificationColumns);
+        final Trainer trainer = buildTrainer(app.trainerName,
+                buildPreprocessedFolder(app.preprocessingFolder, preprocessor.getTag()), app.sparkMaster,
+                app.accumulationBatches, app.warmupUpdates);
 
         // determine model folder so we know where to write log info and models to
         // (this is a subfolder of the given model folder, one subfolder for each preprocessor / trainer combination)
@@ -139,13 +178,16 @@ public class TrainingApp {
         initLogFile(logFile);
         log.info("Writing output to " + outputFolder);
         log.info("Using log file " + logFile);
+        startupTimer.phaseDone("log setup");
 
         // make sure our data is available
         new DataFetcher(app.rawDataFolder).fetchData();
+        startupTimer.phaseDone("data fetching");
 
         // preprocess data so we can feed it to our network
         preprocessor.preprocess();
         preprocessor.writeLog(outputFolder);
+        startupTimer.phaseDone("preprocessing");
 
         // restore last epoch, if there is one
         if (epochFile != null) {
@@ -160,6 +202,7 @@ public class TrainingApp {
         } else {
             log.info("No epoch to resume, starting from scratch.");
         }
+        startupTimer.phaseDone("state restore");
 
         // run training
         final int epochSaveStep = 100; // after how many epochs we want to save (1 == save every epoch)
@@ -167,7 +210,14 @@ public class TrainingApp {
             currentEpoch++;
             final long start = System.currentTimeMillis();
             trainer.train();
-            log.info("Epoch " + currentEpoch + " took " + ((System.currentTimeMillis() - start)) + "ms to train.");
+            final long duration = System.currentTimeMillis() - start;
+            log.info("Epoch " + currentEpoch + " took " + duration + "ms to train, "
+                    + String.format("%.1f examples/s, score %.5f.",
+                    trainer.getEpochExamples() * 1000.0 / Math.max(duration, 1), trainer.getScore()));
+            if (i == 0) {
+                // includes lazy network creation, data loading & native library initialization
+                startupTimer.phaseDone("first epoch");
+            }
             if ((i + 1) % epochSaveStep == 0 && i > 0) {
                 trainer.saveState(buildEpochFile(outputFolder, currentEpoch));
                 trainer.validate();
@@ -175,10 +225,6 @@ public class TrainingApp {
         }
 
 
-        // TODO github version:
-        // - questions: What about shuffling each epoch?
-        // -
-
         // TODO internal version:
         // - switch maven -> gradle
         // - switch java -> kotlin
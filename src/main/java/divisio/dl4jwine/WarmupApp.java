@@ -0,0 +1,77 @@
+package divisio.dl4jwine;
+
+import org.datavec.api.records.reader.impl.csv.CSVRecordReader;
+import org.datavec.api.split.FileSplit;
+import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Runs through the code paths of a training & testing startup on synthetic data and exits - without downloading or
+ * preprocessing anything. Used to record the loaded classes for a class data sharing archive (see the cds profile).
+ */
+public class WarmupApp {
+
+    private static final Logger log = LoggerFactory.getLogger(WarmupApp.class);
+
+    public static void main(final String[] args) throws Exception {
+        final StartupTimer startupTimer = new StartupTimer();
+        startupTimer.phaseDone("jvm");
+
+        // build the network, loads the native backend
+        final MultiLayerNetwork nn = new MultiLayerNetwork(MultilayerTrainer.buildConfiguration());
+        nn.init();
+        startupTimer.phaseDone("network build");
+
+        // one training step on random data
+        final int nColumns = MultilayerTrainer.idxOutputFeature + 1;
+        final int nRows = 8;
+        nn.fit(new DataSet(Nd4j.rand(nRows, MultilayerTrainer.idxOutputFeature), Nd4j.rand(nRows, 1)));
+        startupTimer.phaseDone("training step");
+
+        final File tempFolder = Files.createTempDirectory("dl4jwine-warmup").toFile();
+        try {
+            // checkpoint round trip, as done when resuming
+            final File epochFile = TrainingApp.buildEpochFile(tempFolder, 0);
+            ModelSerializer.writeModel(nn, epochFile, true);
+            final MultiLayerNetwork restored = ModelSerializer.restoreMultiLayerNetwork(epochFile, true);
+            startupTimer.phaseDone("checkpoint round trip");
+
+            // evaluation on a CSV, as done when testing
+            final File csvFile = new File(tempFolder, "testing.csv");
+            try (final Writer out = Files.newBufferedWriter(csvFile.toPath(), StandardCharsets.UTF_8)) {
+                for (int row = 0; row < nRows; ++row) {
+                    for (int column = 0; column < nColumns; ++column) {
+                        out.write(column > 0 ? ",0.5" : "0");
+                    }
+                    out.write('\n');
+                }
+            }
+            final CSVRecordReader rr = new CSVRecordReader();
+            rr.initialize(new FileSplit(csvFile));
+            restored.evaluateRegression(new RecordReaderDataSetIterator(
+                    rr, null, nRows,
+                    MultilayerTrainer.idxOutputFeature, MultilayerTrainer.idxOutputFeature, -1, -1,
+                    true));
+            startupTimer.phaseDone("evaluation");
+        } finally {
+            final File[] files = tempFolder.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    file.delete();
+                }
+            }
+            tempFolder.delete();
+        }
+        log.info("Warmup done.");
+    }
+}
@@ -0,0 +1,141 @@
+package divisio.dl4jwine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.datavec.api.writable.IntWritable;
+import org.datavec.api.writable.Writable;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Unit test for the StratifiedSplitter.
+ */
+public class StratifiedSplitterTest {
+
+    private static final double[] RATIOS = {0.1, 0.1, 0.8};
+
+    /**
+     * @return records with the stratum in column 0 and a running id in column 1, strata interleaved so each chunk
+     * only contains a few records of each stratum
+     */
+    private static List<List<Writable>> buildRecords(final int[] strata, final int[] sizes) {
+        final List<List<Writable>> result = new ArrayList<>();
+        final int[] left = sizes.clone();
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (int i = 0; i < strata.length; ++i) {
+                if (left[i] > 0) {
+                    left[i]--;
+                    result.add(Arrays.<Writable>asList(new IntWritable(strata[i]), new IntWritable(result.size())));
+                    added = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<List<List<Writable>>> split(final List<List<Writable>> records, final long seed,
+                                                     final int chunkSize, final int threads) throws Exception {
+        final List<List<List<Writable>>> result = new ArrayList<>();
+        final List<Consumer<List<Writable>>> outputs = new ArrayList<>();
+        for (int i = 0; i < RATIOS.length; ++i) {
+            final List<List<Writable>> output = new ArrayList<>();
+            result.add(output);
+            outputs.add(output::add);
+        }
+        new StratifiedSplitter(new int[]{0}, RATIOS, seed, chunkSize, threads).split(records, outputs);
+        return result;
+    }
+
+    private static long[] countStratum(final List<List<List<Writable>>> outputs, final int stratum) {
+        final long[] result = new long[outputs.size()];
+        for (int i = 0; i < outputs.size(); ++i) {
+            for (final List<Writable> record : outputs.get(i)) {
+                if (record.get(0).toInt() == stratum) {
+                    result[i]++;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void targetsUseLargestRemainder() {
+        assertArrayEquals(new long[]{100, 100, 800}, StratifiedSplitter.targets(1000, RATIOS));
+        assertArrayEquals(new long[]{2, 1, 12}, StratifiedSplitter.targets(15, RATIOS));
+    }
+
+    @Test
+    public void targetsGiveEachOutputOneRecordIfPossible() {
+        assertArrayEquals(new long[]{1, 1, 1}, StratifiedSplitter.targets(3, RATIOS));
+        assertArrayEquals(new long[]{1, 1, 3}, StratifiedSplitter.targets(5, RATIOS));
+        assertArrayEquals(new long[]{0, 0, 2}, StratifiedSplitter.targets(2, RATIOS));
+    }
+
+    @Test
+    public void rareStrataAppearInEverySplit() throws Exception {
+        final int[] strata = {3, 4, 6, 9};
+        final int[] sizes = {3, 5, 1000, 4};
+        for (final long seed : new long[]{1, 2, 3, 4, 5}) {
+            final List<List<List<Writable>>> outputs = split(buildRecords(strata, sizes), seed, 2, 4);
+            for (final int stratum : new int[]{3, 4, 9}) {
+                for (final long count : countStratum(outputs, stratum)) {
+                    assertTrue("stratum " + stratum + " missing in an output with seed " + seed, count > 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void proportionsHoldAcrossChunks() throws Exception {
+        // with a chunk size of 4, each chunk contains about one record per stratum
+        final List<List<List<Writable>>> outputs = split(
+                buildRecords(new int[]{1, 2, 3, 4}, new int[]{500, 500, 500, 15}), 1234, 4, 3);
+        for (final int stratum : new int[]{1, 2, 3}) {
+            assertArrayEquals(new long[]{50, 50, 400}, countStratum(outputs, stratum));
+        }
+        assertArrayEquals(new long[]{2, 1, 12}, countStratum(outputs, 4));
+    }
+
+    @Test
+    public void resultIsIndependentOfThreads() throws Exception {
+        final List<List<Writable>> records = buildRecords(new int[]{1, 2, 3}, new int[]{300, 50, 7});
+        final List<List<List<Writable>>> expected = split(records, 1234, 16, 1);
+        assertEquals(expected, split(records, 1234, 16, 4));
+        assertEquals(expected, split(records, 1234, 16, 8));
+    }
+
+    @Test
+    public void countsAreIndependentOfChunkSize() throws Exception {
+        final List<List<Writable>> records = buildRecords(new int[]{1, 2, 3}, new int[]{300, 50, 7});
+        for (final int chunkSize : new int[]{1, 16, 1000}) {
+            final List<List<List<Writable>>> outputs = split(records, 1234, chunkSize, 2);
+            assertArrayEquals(new long[]{30, 30, 240}, countStratum(outputs, 1));
+            assertArrayEquals(new long[]{5, 5, 40}, countStratum(outputs, 2));
+            assertArrayEquals(new long[]{1, 1, 5}, countStratum(outputs, 3));
+        }
+    }
+
+    @Test
+    public void assignmentIsNotSystematic() throws Exception {
+        // a single chunk, so only the random order decides which records are tested
+        final List<List<Writable>> records = buildRecords(new int[]{1}, new int[]{1000});
+        final List<List<Writable>> first = split(records, 1, 1000, 1).get(0);
+        final List<List<Writable>> second = split(records, 2, 1000, 1).get(0);
+        assertTrue("seeds give the same split", !first.equals(second));
+        int evenlySpaced = 0;
+        for (int i = 1; i < first.size(); ++i) {
+            if (first.get(i).get(1).toInt() - first.get(i - 1).get(1).toInt() == 10) {
+                evenlySpaced++;
+            }
+        }
+        assertTrue("testing records are evenly spaced", evenlySpaced < first.size() / 2);
+    }
+}